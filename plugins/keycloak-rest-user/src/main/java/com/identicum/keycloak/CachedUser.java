@@ -0,0 +1,63 @@
+package com.identicum.keycloak;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import jakarta.json.JsonObject;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.System.currentTimeMillis;
+
+/**
+ * User json obtained from the REST API, kept together with the HTTP validators
+ * needed to revalidate it with a conditional GET once it expires.
+ */
+@Getter
+public class CachedUser {
+
+	private final JsonObject user;
+	private final String etag;
+	private final String lastModified;
+	private volatile long expiresAt;
+	@Getter(AccessLevel.NONE)
+	private final AtomicBoolean revalidating = new AtomicBoolean(false);
+
+	public CachedUser(JsonObject user, String etag, String lastModified, long ttl) {
+		this.user = user;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.expiresAt = currentTimeMillis() + ttl;
+	}
+
+	public boolean hasValidators() {
+		return etag != null || lastModified != null;
+	}
+
+	public boolean isFresh() {
+		return currentTimeMillis() < expiresAt;
+	}
+
+	public boolean isServableStale(long staleWhileRevalidate) {
+		return currentTimeMillis() < expiresAt + staleWhileRevalidate;
+	}
+
+	/**
+	 * Called when the API answered 304 Not Modified: the cached json is still valid
+	 * @param ttl Time [milliseconds] to keep the entry fresh from now
+	 */
+	public void extend(long ttl) {
+		this.expiresAt = currentTimeMillis() + ttl;
+	}
+
+	/**
+	 * @return true if the caller won the right to run the revalidation
+	 */
+	public boolean startRevalidation() {
+		return revalidating.compareAndSet(false, true);
+	}
+
+	public void endRevalidation() {
+		revalidating.set(false);
+	}
+}
@@ -20,6 +20,9 @@ public class Configuration {
 	public static final String API_SOCKET_TIMEOUT = "apiSocketTimeout";
 	public static final String API_CONNECT_TIMEOUT = "apiConnectTimeout";
 	public static final String API_CONNECTION_REQUEST_TIMEOUT = "apiConnectionRequestTimeout";
+	public static final String USER_CACHE_TTL = "userCacheTtl";
+	public static final String USER_CACHE_STALE_WHILE_REVALIDATE = "userCacheStaleWhileRevalidate";
+	public static final String USER_CACHE_MAX_SIZE = "userCacheMaxSize";
 
 	private static final Logger logger = Logger.getLogger(Configuration.class);
 
@@ -28,6 +31,9 @@ public class Configuration {
 	private Integer apiSocketTimeout;
 	private Integer apiConnectTimeout;
 	private Integer apiConnectionRequestTimeout;
+	private Integer userCacheTtl;
+	private Integer userCacheStaleWhileRevalidate;
+	private Integer userCacheMaxSize;
 
 	public Configuration(MultivaluedHashMap<String, String> keycloakConfig) {
 		this.baseUrl = keycloakConfig.getFirst(PROPERTY_BASE_URL);
@@ -48,6 +54,22 @@ public class Configuration {
 
 		this.apiConnectionRequestTimeout = parseInt(keycloakConfig.getFirst(API_CONNECTION_REQUEST_TIMEOUT));
 		logger.infov("Loaded apiConnectionRequestTimeout from module properties: {0}", apiConnectionRequestTimeout);
+
+		this.userCacheTtl = parseIntOrDefault(keycloakConfig.getFirst(USER_CACHE_TTL), 0);
+		logger.infov("Loaded userCacheTtl from module properties: {0}", userCacheTtl);
+
+		this.userCacheStaleWhileRevalidate = parseIntOrDefault(keycloakConfig.getFirst(USER_CACHE_STALE_WHILE_REVALIDATE), 0);
+		logger.infov("Loaded userCacheStaleWhileRevalidate from module properties: {0}", userCacheStaleWhileRevalidate);
+
+		this.userCacheMaxSize = parseIntOrDefault(keycloakConfig.getFirst(USER_CACHE_MAX_SIZE), 10000);
+		logger.infov("Loaded userCacheMaxSize from module properties: {0}", userCacheMaxSize);
+	}
+
+	/**
+	 * Properties added after the first release may be missing in components already stored in the realm
+	 */
+	private static Integer parseIntOrDefault(String value, Integer defaultValue) {
+		return value == null || value.isBlank() ? defaultValue : parseInt(value);
 	}
 
 	public static void validate(MultivaluedHashMap<String, String> config) {
@@ -66,6 +88,24 @@ public class Configuration {
 			logger.warn("maxHttpConnections property is not valid. Enter a valid number");
 			throw new ComponentValidationException("Max pool connections should be a number");
 		}
+
+		String userCacheTtl = config.getFirst(USER_CACHE_TTL);
+		if(userCacheTtl != null && !userCacheTtl.matches("\\d*")) {
+			logger.warn("userCacheTtl property is not valid. Enter a valid number");
+			throw new ComponentValidationException("User cache TTL should be a number");
+		}
+
+		String userCacheStaleWhileRevalidate = config.getFirst(USER_CACHE_STALE_WHILE_REVALIDATE);
+		if(userCacheStaleWhileRevalidate != null && !userCacheStaleWhileRevalidate.matches("\\d*")) {
+			logger.warn("userCacheStaleWhileRevalidate property is not valid. Enter a valid number");
+			throw new ComponentValidationException("User cache stale-while-revalidate should be a number");
+		}
+
+		String userCacheMaxSize = config.getFirst(USER_CACHE_MAX_SIZE);
+		if(userCacheMaxSize != null && !userCacheMaxSize.matches("\\d*")) {
+			logger.warn("userCacheMaxSize property is not valid. Enter a valid number");
+			throw new ComponentValidationException("User cache max size should be a number");
+		}
 	}
 
 	@Override
@@ -75,7 +115,10 @@ public class Configuration {
 		buffer.append("maxConnections: " + maxConnections + "; ");
 		buffer.append("apiSocketTimeout: " + apiSocketTimeout + "; ");
 		buffer.append("apiConnectTimeout: " + apiConnectTimeout + "; ");
-		buffer.append("apiConnectionRequestTimeout: " + apiConnectionRequestTimeout);
+		buffer.append("apiConnectionRequestTimeout: " + apiConnectionRequestTimeout + "; ");
+		buffer.append("userCacheTtl: " + userCacheTtl + "; ");
+		buffer.append("userCacheStaleWhileRevalidate: " + userCacheStaleWhileRevalidate + "; ");
+		buffer.append("userCacheMaxSize: " + userCacheMaxSize);
 
 		return buffer.toString();
 	}
@@ -24,6 +24,7 @@ import org.keycloak.storage.user.UserRegistrationProvider;
 import jakarta.json.JsonArray;
 import jakarta.json.JsonObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -44,6 +45,9 @@ import static com.identicum.keycloak.Configuration.API_CONNECT_TIMEOUT;
 import static com.identicum.keycloak.Configuration.API_SOCKET_TIMEOUT;
 import static com.identicum.keycloak.Configuration.PROPERTY_BASE_URL;
 import static com.identicum.keycloak.Configuration.PROPERTY_MAX_HTTP_CONNECTIONS;
+import static com.identicum.keycloak.Configuration.USER_CACHE_MAX_SIZE;
+import static com.identicum.keycloak.Configuration.USER_CACHE_STALE_WHILE_REVALIDATE;
+import static com.identicum.keycloak.Configuration.USER_CACHE_TTL;
 import static com.identicum.keycloak.Configuration.validate;
 import static org.jboss.logging.Logger.getLogger;
 import static org.keycloak.provider.ProviderConfigProperty.LIST_TYPE;
@@ -172,11 +176,17 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 	@AutoService(UserStorageProviderFactory.class)
 	public static class KeycloakRestRepoProviderFactory implements UserStorageProviderFactory<KeycloakRestRepoProvider> {
 	
+		public static final String PROVIDER_ID = "rest-repo-provider";
+		private static final long REMOVED_COMPONENTS_CHECK_INTERVAL = 60000;
+
 		private static final Logger logger = getLogger(KeycloakRestRepoProviderFactory.class);
 		private List<ProviderConfigProperty> configMetadata;
-		private MultivaluedHashMap<String, String> lastConfiguration = null;
-	
-		private RestHandler restHandler;
+
+		// one handler per component, so realms with their own components do not share pool, timeouts or cache
+		private final Map<String, RestHandler> restHandlers = new HashMap<>();
+		private final Map<String, MultivaluedHashMap<String, String>> lastConfigurations = new HashMap<>();
+		private final Map<String, String> componentRealms = new HashMap<>();
+		private long nextRemovedComponentsCheck = 0;
 	
 		@Override
 		public void init(Scope config) {
@@ -208,25 +218,112 @@ public class KeycloakRestRepoProvider implements CredentialInputValidator,
 					.defaultValue("1000")
 					.helpText("Max time [milliseconds] to wait until a connection in the pool is assigned to the requesting thread")
 					.add();
+			builder.property().name(USER_CACHE_TTL)
+					.type(STRING_TYPE).label("User Cache TTL")
+					.defaultValue("0")
+					.helpText("Time [milliseconds] a user obtained from the API is considered fresh. Expired users are revalidated with ETag / Last-Modified. 0 disables the cache")
+					.add();
+			builder.property().name(USER_CACHE_STALE_WHILE_REVALIDATE)
+					.type(STRING_TYPE).label("User Cache Stale While Revalidate")
+					.defaultValue("0")
+					.helpText("Time [milliseconds] after expiration during which the cached user is returned while it is revalidated in background. Up to 4 revalidations run at a time, keep it above the API timeouts")
+					.add();
+			builder.property().name(USER_CACHE_MAX_SIZE)
+					.type(STRING_TYPE).label("User Cache Max Size")
+					.defaultValue("10000")
+					.helpText("Max users kept in cache. The least recently used are evicted first")
+					.add();
 			configMetadata = builder.build();
 		}
 	
 		@Override
 		public KeycloakRestRepoProvider create(KeycloakSession session, ComponentModel model) {
-			if(restHandler == null || !model.getConfig().equals( lastConfiguration )) {
-				logger.infov("Creating a new instance of restHandler");
+			closeRemovedComponents(session);
+			return new KeycloakRestRepoProvider(session, model, getRestHandler(model));
+		}
+
+		/**
+		 * Get the handler for the component. If only pool, timeout or cache properties changed,
+		 * the existing handler is reconfigured in place to keep its connections and cached users.
+		 */
+		public synchronized RestHandler getRestHandler(ComponentModel model) {
+			RestHandler restHandler = restHandlers.get(model.getId());
+			if(restHandler == null || !model.getConfig().equals( lastConfigurations.get(model.getId()) )) {
 				Configuration configuration = new Configuration(model.getConfig());
-				restHandler = new RestHandler(configuration);
-				lastConfiguration = model.getConfig();
+				if(restHandler != null && restHandler.getBaseUrl().equals(configuration.getBaseUrl())) {
+					logger.infov("Reconfiguring existing instance of restHandler for component {0}", model.getId());
+					restHandler.reconfigure(configuration);
+				} else {
+					logger.infov("Creating a new instance of restHandler for component {0}", model.getId());
+					if(restHandler != null) {
+						restHandler.closeGracefully();
+					}
+					restHandler = new RestHandler(configuration);
+					restHandlers.put(model.getId(), restHandler);
+					componentRealms.put(model.getId(), model.getParentId());
+				}
+				// copy, so changes made on the model itself are detected on the next call
+				MultivaluedHashMap<String, String> lastConfiguration = new MultivaluedHashMap<>();
+				lastConfiguration.putAll(model.getConfig());
+				lastConfigurations.put(model.getId(), lastConfiguration);
 			} else {
 				logger.infov("RestHandler already instantiated");
 			}
-			return new KeycloakRestRepoProvider(session, model, restHandler);
+			return restHandler;
+		}
+
+		/**
+		 * Get the handler already created for the component, without creating or reconfiguring it
+		 * @return Handler or null if no user was looked up with the component on this node yet
+		 */
+		public synchronized RestHandler findRestHandler(String componentId) {
+			return restHandlers.get(componentId);
+		}
+
+		@Override
+		public synchronized void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+			removeRestHandler(model.getId());
+		}
+
+		/**
+		 * preRemove only runs on the node handling the delete, so every node periodically closes
+		 * the handlers of components that no longer exist when the provider is used.
+		 */
+		private synchronized void closeRemovedComponents(KeycloakSession session) {
+			long now = System.currentTimeMillis();
+			if(now < nextRemovedComponentsCheck) {
+				return;
+			}
+			nextRemovedComponentsCheck = now + REMOVED_COMPONENTS_CHECK_INTERVAL;
+			for(String componentId : new ArrayList<>(restHandlers.keySet())) {
+				RealmModel realm = session.realms().getRealm(componentRealms.get(componentId));
+				if(realm == null || realm.getComponent(componentId) == null) {
+					logger.infov("Component {0} was removed, closing its restHandler", componentId);
+					removeRestHandler(componentId);
+				}
+			}
+		}
+
+		private void removeRestHandler(String componentId) {
+			RestHandler restHandler = restHandlers.remove(componentId);
+			lastConfigurations.remove(componentId);
+			componentRealms.remove(componentId);
+			if(restHandler != null) {
+				restHandler.closeGracefully();
+			}
 		}
 	
+		@Override
+		public synchronized void close() {
+			restHandlers.values().forEach(RestHandler::close);
+			restHandlers.clear();
+			lastConfigurations.clear();
+			componentRealms.clear();
+		}
+
 		@Override
 		public String getId() {
-			return "rest-repo-provider";
+			return PROVIDER_ID;
 		}
 	
 		@Override
@@ -1,5 +1,6 @@
 package com.identicum.keycloak;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.config.RequestConfig;
@@ -31,10 +32,21 @@ import jakarta.json.JsonObjectBuilder;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.Boolean.TRUE;
 import static java.lang.String.format;
 import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.stream.Stream.of;
 import static jakarta.json.Json.createObjectBuilder;
 import static org.apache.http.Consts.UTF_8;
@@ -42,6 +54,10 @@ import static org.apache.http.HttpHeaders.ACCEPT;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.apache.http.HttpHeaders.CONNECTION;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.apache.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
+import static org.apache.http.HttpHeaders.LAST_MODIFIED;
 import static org.apache.http.entity.ContentType.APPLICATION_FORM_URLENCODED;
 import static org.apache.http.entity.ContentType.APPLICATION_JSON;
 import static org.apache.http.protocol.HTTP.CONN_DIRECTIVE;
@@ -51,11 +67,30 @@ import static org.jboss.logging.Logger.getLogger;
 public class RestHandler {
 
 	private static final Logger logger = getLogger(RestHandler.class);
+	private static final int REVALIDATION_THREADS = 4;
+	private static final int REVALIDATION_QUEUE_SIZE = 1000;
 	protected CloseableHttpClient httpClient;
 
-	private final Configuration configuration;
+	private volatile Configuration configuration;
+	// applied to every request so timeouts can be changed without rebuilding the client
+	private volatile RequestConfig requestConfig;
 	private final PoolingHttpClientConnectionManager poolingHttpClientConnectionManager;
 
+	// users obtained from the API, shared by all sessions using this handler. Access ordered to evict the least recently used
+	private final Map<String, CachedUser> userCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedUser> eldest) {
+			return size() > configuration.getUserCacheMaxSize();
+		}
+	});
+	// incremented on every invalidation, so fetches started before it do not write back stale users
+	private final AtomicLong invalidations = new AtomicLong();
+	// background revalidations, bounded so a slow backend delays at most REVALIDATION_THREADS refreshes at a time
+	private final ExecutorService revalidationExecutor = new ThreadPoolExecutor(REVALIDATION_THREADS, REVALIDATION_THREADS,
+			30, SECONDS, new ArrayBlockingQueue<>(REVALIDATION_QUEUE_SIZE), daemonThreadFactory("rest-repo-user-revalidation"));
+	// periodic eviction of expired users and the delayed close, never blocked by backend calls
+	private final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("rest-repo-user-cache"));
+
 	private final String BACKEND_AUTHENTICATION_ERROR = "BACKEND_AUTHENTICATION_ERROR";
 
 	public RestHandler(Configuration configuration) {
@@ -65,20 +100,72 @@ public class RestHandler {
 		Integer connectionRequestTimeout = configuration.getApiConnectionRequestTimeout();
 		logger.infov("Initializing HTTP pool with maxConnections: {0}, connectionRequestTimeout: {1}, connectTimeout: {2}, socketTimeout: {3}", maxConnections, connectionRequestTimeout, connectTimeout, socketTimeout);
 		this.poolingHttpClientConnectionManager = new PoolingHttpClientConnectionManager();
-		this.poolingHttpClientConnectionManager.setMaxTotal(maxConnections);
-		this.poolingHttpClientConnectionManager.setDefaultMaxPerRoute(maxConnections);
-		this.poolingHttpClientConnectionManager.setDefaultSocketConfig(SocketConfig.custom()
-				.setSoTimeout(socketTimeout)
-				.build());
-		RequestConfig requestConfig = RequestConfig.custom()
-				.setConnectTimeout(connectTimeout)
-				.setConnectionRequestTimeout(connectionRequestTimeout)
-				.build();
+		resizePool(maxConnections);
+		setTimeouts(socketTimeout, connectTimeout, connectionRequestTimeout);
 		this.httpClient = HttpClients.custom()
-				.setDefaultRequestConfig(requestConfig)
 				.setConnectionManager(poolingHttpClientConnectionManager)
 				.build();
 		this.configuration = configuration;
+		((ThreadPoolExecutor) this.revalidationExecutor).allowCoreThreadTimeOut(true);
+		this.maintenanceExecutor.scheduleWithFixedDelay(this::evictExpiredUsers, 1, 1, MINUTES);
+	}
+
+	/**
+	 * Apply a new configuration keeping the pooled connections and the cached users.
+	 * Only valid if the base url did not change.
+	 * @param configuration New component configuration
+	 */
+	public void reconfigure(Configuration configuration) {
+		logger.infov("Reconfiguring HTTP pool in place: {0}", configuration);
+		resizePool(configuration.getMaxConnections());
+		setTimeouts(configuration.getApiSocketTimeout(), configuration.getApiConnectTimeout(), configuration.getApiConnectionRequestTimeout());
+		this.configuration = configuration;
+		if(configuration.getUserCacheTtl() <= 0) {
+			flushCache();
+		} else {
+			trimCache();
+		}
+	}
+
+	/**
+	 * Change pool size on the existing connection manager. When shrinking, leased connections
+	 * are not interrupted, they are closed when released back to the pool.
+	 * @param maxConnections Max connections in pool and per route
+	 */
+	public void resizePool(Integer maxConnections) {
+		logger.infov("Setting HTTP pool maxConnections: {0}", maxConnections);
+		this.poolingHttpClientConnectionManager.setMaxTotal(maxConnections);
+		this.poolingHttpClientConnectionManager.setDefaultMaxPerRoute(maxConnections);
+	}
+
+	/**
+	 * Change timeouts for the next requests. Null values keep the current timeout.
+	 * @param socketTimeout Max time [milliseconds] to wait for response
+	 * @param connectTimeout Max time [milliseconds] to establish the connection
+	 * @param connectionRequestTimeout Max time [milliseconds] to wait for a connection from the pool
+	 */
+	public void setTimeouts(Integer socketTimeout, Integer connectTimeout, Integer connectionRequestTimeout) {
+		RequestConfig current = requestConfig != null ? requestConfig : RequestConfig.DEFAULT;
+		RequestConfig.Builder builder = RequestConfig.copy(current);
+		if(socketTimeout != null) {
+			builder.setSocketTimeout(socketTimeout);
+			this.poolingHttpClientConnectionManager.setDefaultSocketConfig(SocketConfig.custom()
+					.setSoTimeout(socketTimeout)
+					.build());
+		}
+		if(connectTimeout != null) {
+			builder.setConnectTimeout(connectTimeout);
+		}
+		if(connectionRequestTimeout != null) {
+			builder.setConnectionRequestTimeout(connectionRequestTimeout);
+		}
+		this.requestConfig = builder.build();
+		logger.infov("Setting HTTP timeouts connectionRequestTimeout: {0}, connectTimeout: {1}, socketTimeout: {2}",
+				requestConfig.getConnectionRequestTimeout(), requestConfig.getConnectTimeout(), requestConfig.getSocketTimeout());
+	}
+
+	public String getBaseUrl() {
+		return configuration.getBaseUrl();
 	}
 
 	public boolean authenticate(String username, String password) {
@@ -101,8 +188,24 @@ public class RestHandler {
 
 	public JsonObject findUserByUsername(String username) {
 		logger.infov("Finding user by username: {0}", username);
-		SimpleHttpResponse response = executeCall(new HttpGet(configuration.getBaseUrl() + "/users/" + username));
-		return response.isSuccess()? response.getResponseAsJsonObject() : null;
+		if(configuration.getUserCacheTtl() <= 0) {
+			SimpleHttpResponse response = executeCall(new HttpGet(configuration.getBaseUrl() + "/users/" + username));
+			return response.isSuccess()? response.getResponseAsJsonObject() : null;
+		}
+
+		CachedUser cachedUser = userCache.get(username);
+		if(cachedUser != null) {
+			if(cachedUser.isFresh()) {
+				logger.debugv("Returning user {0} from handler cache", username);
+				return cachedUser.getUser();
+			}
+			if(cachedUser.isServableStale(configuration.getUserCacheStaleWhileRevalidate())) {
+				logger.debugv("Returning stale user {0} from handler cache while revalidating", username);
+				revalidateInBackground(username, cachedUser);
+				return cachedUser.getUser();
+			}
+		}
+		return fetchUser(username, cachedUser);
 	}
 
 	public void setUserAttribute(String username, String attribute, String value) {
@@ -117,6 +220,48 @@ public class RestHandler {
 		httpPatch.setEntity(httpEntity);
 
 		stopOnError(executeCall(httpPatch));
+		invalidateUser(username);
+	}
+
+	/**
+	 * Remove the user from the cache, either if it was cached by username or by email
+	 * @param username Username of the modified user
+	 */
+	public void invalidateUser(String username) {
+		invalidations.incrementAndGet();
+		userCache.entrySet().removeIf(entry -> username.equals(entry.getKey())
+				|| username.equals(entry.getValue().getUser().getString("username", null)));
+	}
+
+	/**
+	 * Release the HTTP pool and stop the cache tasks. Requests still running on this handler will fail.
+	 */
+	public void close() {
+		logger.infov("Closing HTTP pool for {0}", configuration.getBaseUrl());
+		revalidationExecutor.shutdownNow();
+		maintenanceExecutor.shutdownNow();
+		try {
+			httpClient.close();
+		} catch (IOException io) {
+			logger.warn("Error closing http client", io);
+		}
+	}
+
+	/**
+	 * Close the handler once the requests already running on it had time to finish.
+	 * Used when the handler is replaced while other sessions may still be using it.
+	 */
+	public void closeGracefully() {
+		long gracePeriod = (long) requestConfig.getConnectionRequestTimeout() + requestConfig.getConnectTimeout() + requestConfig.getSocketTimeout();
+		logger.infov("Closing HTTP pool for {0} in {1} ms", configuration.getBaseUrl(), gracePeriod);
+		try {
+			maintenanceExecutor.schedule(this::close, gracePeriod, MILLISECONDS);
+			// pending revalidations and the delayed close still run, the periodic eviction is cancelled
+			revalidationExecutor.shutdown();
+			maintenanceExecutor.shutdown();
+		} catch (RejectedExecutionException ree) {
+			close();
+		}
 	}
 
 	public Map<String, Integer> getStats() {
@@ -127,9 +272,25 @@ public class RestHandler {
 		stats.put("availableConnections", poolStats.getAvailable());
 		stats.put("leasedConnections", poolStats.getLeased());
 		stats.put("pendingConnections", poolStats.getPending());
+		stats.put("cachedUsers", userCache.size());
+		stats.put("socketTimeout", requestConfig.getSocketTimeout());
+		stats.put("connectTimeout", requestConfig.getConnectTimeout());
+		stats.put("connectionRequestTimeout", requestConfig.getConnectionRequestTimeout());
 		return stats;
 	}
 
+	public Map<String, CachedUser> getCachedUsers() {
+		synchronized (userCache) {
+			return new HashMap<>(userCache);
+		}
+	}
+
+	public void flushCache() {
+		logger.infov("Flushing {0} cached users", userCache.size());
+		invalidations.incrementAndGet();
+		userCache.clear();
+	}
+
 	public JsonArray findUsers(String username) {
 		logger.infov("Finding users with username: {0}", username);
 		String searchUrl = configuration.getBaseUrl() + "/users";
@@ -142,6 +303,124 @@ public class RestHandler {
 		return response.getResponseAsJsonArray();
 	}
 
+	/* ------------------------------------------------------------------------ */
+	/* User cache handlers                                                      */
+	/* ------------------------------------------------------------------------ */
+
+	/**
+	 * Get the user from the API and refresh the cache. If there is a cached entry with validators
+	 * a conditional GET is sent, and on 304 Not Modified the entry is extended without parsing the body again.
+	 *
+	 * @param username User to be obtained
+	 * @param cachedUser Current cache entry, null if the user is not cached
+	 * @return User json or null if the user was not found
+	 */
+	private JsonObject fetchUser(String username, CachedUser cachedUser) {
+		HttpGet httpGet = new HttpGet(configuration.getBaseUrl() + "/users/" + username);
+		if(cachedUser != null && cachedUser.hasValidators()) {
+			if(cachedUser.getEtag() != null) {
+				httpGet.setHeader(IF_NONE_MATCH, cachedUser.getEtag());
+			}
+			if(cachedUser.getLastModified() != null) {
+				httpGet.setHeader(IF_MODIFIED_SINCE, cachedUser.getLastModified());
+			}
+		}
+
+		long generation = invalidations.get();
+		SimpleHttpResponse response = executeCall(httpGet);
+		if(response.isNotModified() && cachedUser != null) {
+			logger.debugv("User {0} not modified, extending cache entry", username);
+			userCache.computeIfPresent(username, (key, current) -> {
+				if(isCurrent(current, cachedUser, generation)) {
+					current.extend(configuration.getUserCacheTtl());
+				}
+				return current;
+			});
+			return cachedUser.getUser();
+		}
+		if(response.getStatus() == 404) {
+			if(cachedUser != null) {
+				userCache.remove(username, cachedUser);
+			}
+			return null;
+		}
+		if(!response.isSuccess()) {
+			// a temporary backend error does not mean the user was removed, keep serving it while allowed
+			if(cachedUser != null && cachedUser.isServableStale(configuration.getUserCacheStaleWhileRevalidate())) {
+				logger.warnv("Error {0} revalidating user {1}, keeping cached user", response.getStatus(), username);
+				return cachedUser.getUser();
+			}
+			if(cachedUser != null) {
+				userCache.remove(username, cachedUser);
+			}
+			return null;
+		}
+
+		JsonObject user = response.getResponseAsJsonObject();
+		CachedUser fetchedUser = new CachedUser(user, response.getEtag(), response.getLastModified(), configuration.getUserCacheTtl());
+		userCache.compute(username, (key, current) -> isCurrent(current, cachedUser, generation) ? fetchedUser : current);
+		return user;
+	}
+
+	/**
+	 * Check if the entry a fetch started from is still the one in the cache and no invalidation happened meanwhile.
+	 * Otherwise the fetched data could be older than a PATCH and must not be written back.
+	 */
+	private boolean isCurrent(CachedUser current, CachedUser startedFrom, long generation) {
+		return current == startedFrom && generation == invalidations.get();
+	}
+
+	/**
+	 * Remove the users that can not be returned anymore, not even while revalidating
+	 */
+	private void evictExpiredUsers() {
+		long staleWhileRevalidate = configuration.getUserCacheStaleWhileRevalidate();
+		int before = userCache.size();
+		userCache.values().removeIf(cachedUser -> !cachedUser.isServableStale(staleWhileRevalidate));
+		logger.debugv("Evicted {0} expired users from handler cache", before - userCache.size());
+	}
+
+	/**
+	 * Remove the least recently used users until the cache fits the configured max size
+	 */
+	private void trimCache() {
+		synchronized (userCache) {
+			Iterator<String> iterator = userCache.keySet().iterator();
+			while(userCache.size() > configuration.getUserCacheMaxSize() && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Refresh an expired entry without blocking the caller. Only one revalidation per entry runs at a time.
+	 * @param username User to be revalidated
+	 * @param cachedUser Expired cache entry
+	 */
+	private void revalidateInBackground(String username, CachedUser cachedUser) {
+		if(!cachedUser.startRevalidation()) {
+			return;
+		}
+		try {
+			revalidationExecutor.execute(() -> {
+				try {
+					fetchUser(username, cachedUser);
+				}
+				catch(RuntimeException e) {
+					logger.warnv("Error revalidating user {0}: {1}", username, e.getMessage());
+				}
+				finally {
+					cachedUser.endRevalidation();
+				}
+			});
+		}
+		catch(RejectedExecutionException ree) {
+			logger.warnv("Revalidation of user {0} rejected: {1}", username, ree.getMessage());
+			cachedUser.endRevalidation();
+		}
+	}
+
 	/* ------------------------------------------------------------------------ */
 	/* HTTP calls handlers                                                      */
 	/* ------------------------------------------------------------------------ */
@@ -170,15 +449,18 @@ public class RestHandler {
 	private SimpleHttpResponse executeCall(HttpRequestBase request) {
 		logger.debugv("Executing Http Request [{0}] on [{1}]", request.getMethod(), request.getURI());
 		request.setHeader(CONNECTION, CONN_KEEP_ALIVE);
+		request.setConfig(requestConfig);
 
 		of( request.getAllHeaders() ).forEach(header -> logger.debugv("Request header: {0} -> {1}", header.getName(), header.getValue() ));
 		CloseableHttpResponse response = null;
 		try {
 			response = httpClient.execute(request);
-			String responseString = EntityUtils.toString(response.getEntity(), "UTF-8");
+			// 304 Not Modified responses have no entity
+			String responseString = response.getEntity() != null ? EntityUtils.toString(response.getEntity(), "UTF-8") : null;
 			logger.debugv("Response code obtained from server: {0}", response.getStatusLine().getStatusCode());
 			logger.debugv("Response body obtained from server: {0}", responseString);
-			return new SimpleHttpResponse(response.getStatusLine().getStatusCode(), responseString);
+			return new SimpleHttpResponse(response.getStatusLine().getStatusCode(), responseString,
+					headerValue(response, ETAG), headerValue(response, LAST_MODIFIED));
 		}
 		catch(ConnectionPoolTimeoutException cpte) {
 			logger.errorv(format("Connection pool timeout exception: %s", cpte), cpte);
@@ -201,6 +483,19 @@ public class RestHandler {
 		}
 	}
 
+	private static ThreadFactory daemonThreadFactory(String name) {
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private String headerValue(CloseableHttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header != null ? header.getValue() : null;
+	}
+
 	private void stopOnError(SimpleHttpResponse response) {
 		if(!response.isSuccess()) {
 			StringBuffer buffer = new StringBuffer();
@@ -0,0 +1,261 @@
+package com.identicum.keycloak;
+
+import com.google.auto.service.AutoService;
+import com.identicum.keycloak.KeycloakRestRepoProvider.KeycloakRestRepoProviderFactory;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.PUT;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Response;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config.Scope;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager.AuthResult;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.storage.UserStorageProvider;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.identicum.keycloak.Configuration.API_CONNECTION_REQUEST_TIMEOUT;
+import static com.identicum.keycloak.Configuration.API_CONNECT_TIMEOUT;
+import static com.identicum.keycloak.Configuration.API_SOCKET_TIMEOUT;
+import static com.identicum.keycloak.Configuration.PROPERTY_MAX_HTTP_CONNECTIONS;
+import static com.identicum.keycloak.KeycloakRestRepoProvider.KeycloakRestRepoProviderFactory.PROVIDER_ID;
+import static java.lang.String.valueOf;
+import static java.util.stream.Collectors.toList;
+import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
+import static org.jboss.logging.Logger.getLogger;
+
+/**
+ * Realm admin endpoint to tune the rest repo handler of a component at runtime, without recreating the pool or losing cached users.
+ * Available at /realms/{realm}/rest-repo-admin/{componentId}. Read operations require view-realm and changes require manage-realm.
+ * All operations act on the node that handles the request. Pool and timeout changes are temporary unless they are
+ * saved to the component, which is optional because it validates the base url and evicts the realm user cache.
+ */
+public class RestRepoAdminResourceProvider implements RealmResourceProvider {
+
+	private static final Logger logger = getLogger(RestRepoAdminResourceProvider.class);
+
+	private final KeycloakSession session;
+
+	public RestRepoAdminResourceProvider(KeycloakSession session) {
+		this.session = session;
+	}
+
+	@Override
+	public Object getResource() {
+		return this;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@GET
+	@Produces(APPLICATION_JSON)
+	public List<Map<String, Object>> getComponents() {
+		authenticate().realm().requireViewRealm();
+		RealmModel realm = session.getContext().getRealm();
+		return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+				.filter(model -> PROVIDER_ID.equals(model.getProviderId()))
+				.map(model -> {
+					Map<String, Object> representation = new HashMap<>();
+					representation.put("id", model.getId());
+					representation.put("name", model.getName());
+					representation.put("initialized", getFactory().findRestHandler(model.getId()) != null);
+					return representation;
+				})
+				.collect(toList());
+	}
+
+	@GET
+	@Path("{componentId}/stats")
+	@Produces(APPLICATION_JSON)
+	public Map<String, Integer> getStats(@PathParam("componentId") String componentId) {
+		authenticate().realm().requireViewRealm();
+		return getRestHandler(componentId).getStats();
+	}
+
+	/**
+	 * Apply the new pool size and timeouts in place on this node. They last until the node restarts or the component is updated.
+	 * With persist=true they are also saved to the component so other nodes apply them on their next use of it. Saving runs
+	 * the component validation, which connects to the base url, and evicts the Keycloak user cache of the realm.
+	 */
+	@PUT
+	@Path("{componentId}/pool")
+	@Produces(APPLICATION_JSON)
+	public Map<String, Integer> tunePool(@PathParam("componentId") String componentId,
+										 @QueryParam("maxConnections") Integer maxConnections,
+										 @QueryParam("socketTimeout") Integer socketTimeout,
+										 @QueryParam("connectTimeout") Integer connectTimeout,
+										 @QueryParam("connectionRequestTimeout") Integer connectionRequestTimeout,
+										 @QueryParam("persist") boolean persist) {
+		authenticate().realm().requireManageRealm();
+		if(maxConnections != null && maxConnections <= 0) {
+			throw new BadRequestException("maxConnections should be greater than 0");
+		}
+		if(isNegative(socketTimeout) || isNegative(connectTimeout) || isNegative(connectionRequestTimeout)) {
+			throw new BadRequestException("Timeouts should not be negative");
+		}
+
+		RestHandler restHandler = getRestHandler(componentId);
+		logger.infov("Tuning component {0} with maxConnections: {1}, connectionRequestTimeout: {2}, connectTimeout: {3}, socketTimeout: {4}", componentId, maxConnections, connectionRequestTimeout, connectTimeout, socketTimeout);
+		if(maxConnections != null) {
+			restHandler.resizePool(maxConnections);
+		}
+		restHandler.setTimeouts(socketTimeout, connectTimeout, connectionRequestTimeout);
+
+		if(persist) {
+			// copy, the model returned by the realm may be the instance shared by the realm cache
+			ComponentModel component = new ComponentModel(getComponent(componentId));
+			putIfPresent(component, PROPERTY_MAX_HTTP_CONNECTIONS, maxConnections);
+			putIfPresent(component, API_SOCKET_TIMEOUT, socketTimeout);
+			putIfPresent(component, API_CONNECT_TIMEOUT, connectTimeout);
+			putIfPresent(component, API_CONNECTION_REQUEST_TIMEOUT, connectionRequestTimeout);
+			logger.infov("Saving pool settings to component {0}", componentId);
+			session.getContext().getRealm().updateComponent(component);
+		}
+		return restHandler.getStats();
+	}
+
+	@GET
+	@Path("{componentId}/cache")
+	@Produces(APPLICATION_JSON)
+	public Map<String, Map<String, Object>> getCachedUsers(@PathParam("componentId") String componentId) {
+		authenticate().realm().requireViewRealm();
+		Map<String, Map<String, Object>> entries = new TreeMap<>();
+		getRestHandler(componentId).getCachedUsers().forEach((username, cachedUser) -> entries.put(username, toRepresentation(cachedUser)));
+		return entries;
+	}
+
+	@GET
+	@Path("{componentId}/cache/{username}")
+	@Produces(APPLICATION_JSON)
+	public Map<String, Object> getCachedUser(@PathParam("componentId") String componentId, @PathParam("username") String username) {
+		authenticate().realm().requireViewRealm();
+		CachedUser cachedUser = getRestHandler(componentId).getCachedUsers().get(username);
+		if(cachedUser == null) {
+			throw new NotFoundException("User " + username + " is not cached");
+		}
+		return toRepresentation(cachedUser);
+	}
+
+	@DELETE
+	@Path("{componentId}/cache")
+	public Response flushCache(@PathParam("componentId") String componentId) {
+		authenticate().realm().requireManageRealm();
+		getRestHandler(componentId).flushCache();
+		return Response.noContent().build();
+	}
+
+	@DELETE
+	@Path("{componentId}/cache/{username}")
+	public Response invalidateUser(@PathParam("componentId") String componentId, @PathParam("username") String username) {
+		authenticate().realm().requireManageRealm();
+		getRestHandler(componentId).invalidateUser(username);
+		return Response.noContent().build();
+	}
+
+	private AdminPermissionEvaluator authenticate() {
+		AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+		if(auth == null) {
+			throw new NotAuthorizedException("Bearer");
+		}
+		RealmModel realm = session.getContext().getRealm();
+		AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+		return AdminPermissions.evaluator(session, realm, adminAuth);
+	}
+
+	/**
+	 * Only components of this realm can be managed, so realm admins can not reach handlers of other realms
+	 */
+	private ComponentModel getComponent(String componentId) {
+		RealmModel realm = session.getContext().getRealm();
+		ComponentModel component = realm.getComponent(componentId);
+		if(component == null || !realm.getId().equals(component.getParentId()) || !PROVIDER_ID.equals(component.getProviderId())) {
+			throw new NotFoundException("Realm " + realm.getName() + " has no " + PROVIDER_ID + " component " + componentId);
+		}
+		return component;
+	}
+
+	/**
+	 * Get the handler without creating or reconfiguring it, so reads never affect the pool or the cache
+	 */
+	private RestHandler getRestHandler(String componentId) {
+		ComponentModel component = getComponent(componentId);
+		RestHandler restHandler = getFactory().findRestHandler(component.getId());
+		if(restHandler == null) {
+			throw new NotFoundException("Component " + componentId + " is not initialized on this node");
+		}
+		return restHandler;
+	}
+
+	private KeycloakRestRepoProviderFactory getFactory() {
+		return (KeycloakRestRepoProviderFactory) session.getKeycloakSessionFactory()
+				.getProviderFactory(UserStorageProvider.class, PROVIDER_ID);
+	}
+
+	private void putIfPresent(ComponentModel component, String property, Integer value) {
+		if(value != null) {
+			component.getConfig().putSingle(property, valueOf(value));
+		}
+	}
+
+	private Map<String, Object> toRepresentation(CachedUser cachedUser) {
+		Map<String, Object> representation = new HashMap<>();
+		representation.put("etag", cachedUser.getEtag());
+		representation.put("lastModified", cachedUser.getLastModified());
+		representation.put("expiresAt", cachedUser.getExpiresAt());
+		representation.put("fresh", cachedUser.isFresh());
+		return representation;
+	}
+
+	private boolean isNegative(Integer value) {
+		return value != null && value < 0;
+	}
+
+	@AutoService(RealmResourceProviderFactory.class)
+	public static class RestRepoAdminResourceProviderFactory implements RealmResourceProviderFactory {
+
+		@Override
+		public RealmResourceProvider create(KeycloakSession session) {
+			return new RestRepoAdminResourceProvider(session);
+		}
+
+		@Override
+		public void init(Scope config) {
+		}
+
+		@Override
+		public void postInit(KeycloakSessionFactory factory) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String getId() {
+			return "rest-repo-admin";
+		}
+	}
+}
@@ -16,11 +16,21 @@ public class SimpleHttpResponse {
 
 	private int status;
 	private String response;
+	private String etag;
+	private String lastModified;
+
+	public SimpleHttpResponse(int status, String response) {
+		this(status, response, null, null);
+	}
 
 	public boolean isSuccess(){
 		return status == 200;
 	}
 
+	public boolean isNotModified(){
+		return status == 304;
+	}
+
 	public JsonObject getResponseAsJsonObject() {
 		if(response != null) {
 			JsonReader reader = createReader(new StringReader(response));
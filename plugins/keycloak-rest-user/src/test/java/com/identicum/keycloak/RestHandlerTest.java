@@ -0,0 +1,203 @@
+package com.identicum.keycloak;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.json.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.common.util.MultivaluedHashMap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.identicum.keycloak.Configuration.API_CONNECTION_REQUEST_TIMEOUT;
+import static com.identicum.keycloak.Configuration.API_CONNECT_TIMEOUT;
+import static com.identicum.keycloak.Configuration.API_SOCKET_TIMEOUT;
+import static com.identicum.keycloak.Configuration.PROPERTY_BASE_URL;
+import static com.identicum.keycloak.Configuration.PROPERTY_MAX_HTTP_CONNECTIONS;
+import static com.identicum.keycloak.Configuration.USER_CACHE_MAX_SIZE;
+import static com.identicum.keycloak.Configuration.USER_CACHE_STALE_WHILE_REVALIDATE;
+import static com.identicum.keycloak.Configuration.USER_CACHE_TTL;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RestHandlerTest {
+
+	private static final String ETAG = "\"v1\"";
+
+	private HttpServer server;
+	private volatile HttpHandler usersHandler;
+	private RestHandler restHandler;
+
+	@BeforeEach
+	void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/users/", exchange -> usersHandler.handle(exchange));
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	@AfterEach
+	void stopServer() {
+		if(restHandler != null) {
+			restHandler.close();
+		}
+		server.stop(0);
+	}
+
+	@Test
+	void notModifiedExtendsTtlWithoutParsing() throws Exception {
+		AtomicInteger notModified = new AtomicInteger();
+		usersHandler = exchange -> {
+			if(ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModified.incrementAndGet();
+				respond(exchange, 304, null);
+			} else {
+				respond(exchange, 200, userJson(exchange));
+			}
+		};
+		restHandler = createHandler(200, 0, 10);
+
+		JsonObject first = restHandler.findUserByUsername("jdoe");
+		Thread.sleep(300);
+		JsonObject second = restHandler.findUserByUsername("jdoe");
+
+		assertThat(notModified.get()).isEqualTo(1);
+		// same instance, the body was not read again
+		assertThat(second).isSameAs(first);
+		assertThat(restHandler.getCachedUsers().get("jdoe").isFresh()).isTrue();
+	}
+
+	@Test
+	void patchDuringRevalidationDoesNotWriteBackStaleUser() throws Exception {
+		AtomicInteger gets = new AtomicInteger();
+		CountDownLatch revalidationReceived = new CountDownLatch(1);
+		CountDownLatch releaseRevalidation = new CountDownLatch(1);
+		usersHandler = exchange -> {
+			if("PATCH".equals(exchange.getRequestMethod())) {
+				respond(exchange, 200, "{}");
+				return;
+			}
+			if(gets.incrementAndGet() > 1) {
+				revalidationReceived.countDown();
+				await(releaseRevalidation);
+			}
+			respond(exchange, 200, userJson(exchange));
+		};
+		restHandler = createHandler(100, 60000, 10);
+
+		restHandler.findUserByUsername("jdoe");
+		Thread.sleep(200);
+		CachedUser staleUser = restHandler.getCachedUsers().get("jdoe");
+		// stale user is returned and a background revalidation starts
+		restHandler.findUserByUsername("jdoe");
+		assertThat(revalidationReceived.await(5, SECONDS)).isTrue();
+
+		restHandler.setUserAttribute("jdoe", "firstName", "Jane");
+		releaseRevalidation.countDown();
+		waitRevalidationEnd(staleUser);
+
+		assertThat(restHandler.getCachedUsers()).doesNotContainKey("jdoe");
+	}
+
+	@Test
+	void backendErrorKeepsStaleUser() throws Exception {
+		AtomicInteger gets = new AtomicInteger();
+		usersHandler = exchange -> {
+			if(gets.incrementAndGet() > 1) {
+				respond(exchange, 503, "unavailable");
+			} else {
+				respond(exchange, 200, userJson(exchange));
+			}
+		};
+		restHandler = createHandler(100, 60000, 10);
+
+		JsonObject first = restHandler.findUserByUsername("jdoe");
+		Thread.sleep(200);
+		CachedUser staleUser = restHandler.getCachedUsers().get("jdoe");
+		restHandler.findUserByUsername("jdoe");
+		waitRevalidationEnd(staleUser);
+
+		assertThat(gets.get()).isEqualTo(2);
+		assertThat(restHandler.getCachedUsers().get("jdoe")).isSameAs(staleUser);
+		assertThat(restHandler.findUserByUsername("jdoe")).isSameAs(first);
+	}
+
+	@Test
+	void leastRecentlyUsedUserIsEvicted() {
+		usersHandler = exchange -> respond(exchange, 200, userJson(exchange));
+		restHandler = createHandler(60000, 0, 2);
+
+		restHandler.findUserByUsername("alice");
+		restHandler.findUserByUsername("bob");
+		// cache hit, alice becomes the most recently used
+		restHandler.findUserByUsername("alice");
+		restHandler.findUserByUsername("carol");
+
+		assertThat(restHandler.getCachedUsers()).containsOnlyKeys("alice", "carol");
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/* Helpers                                                                  */
+	/* ------------------------------------------------------------------------ */
+
+	private RestHandler createHandler(int ttl, int staleWhileRevalidate, int maxSize) {
+		MultivaluedHashMap<String, String> config = new MultivaluedHashMap<>();
+		config.putSingle(PROPERTY_BASE_URL, "http://localhost:" + server.getAddress().getPort());
+		config.putSingle(PROPERTY_MAX_HTTP_CONNECTIONS, "5");
+		config.putSingle(API_SOCKET_TIMEOUT, "5000");
+		config.putSingle(API_CONNECT_TIMEOUT, "1000");
+		config.putSingle(API_CONNECTION_REQUEST_TIMEOUT, "1000");
+		config.putSingle(USER_CACHE_TTL, String.valueOf(ttl));
+		config.putSingle(USER_CACHE_STALE_WHILE_REVALIDATE, String.valueOf(staleWhileRevalidate));
+		config.putSingle(USER_CACHE_MAX_SIZE, String.valueOf(maxSize));
+		return new RestHandler(new Configuration(config));
+	}
+
+	private static String userJson(HttpExchange exchange) {
+		String path = exchange.getRequestURI().getPath();
+		String username = path.substring(path.lastIndexOf('/') + 1);
+		return "{\"id\": 1, \"username\": \"" + username + "\", \"firstName\": \"John\", \"lastName\": \"Doe\", \"email\": \"" + username + "@example.com\"}";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		exchange.getResponseHeaders().set("ETag", ETAG);
+		if(body == null) {
+			exchange.sendResponseHeaders(status, -1);
+		} else {
+			byte[] bytes = body.getBytes(UTF_8);
+			exchange.sendResponseHeaders(status, bytes.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(bytes);
+			}
+		}
+		exchange.close();
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(5, SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The revalidation flag of an entry is released once its background fetch finished
+	 */
+	private static void waitRevalidationEnd(CachedUser cachedUser) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!cachedUser.startRevalidation()) {
+			assertThat(System.currentTimeMillis()).isLessThan(deadline);
+			Thread.sleep(10);
+		}
+		cachedUser.endRevalidation();
+	}
+}